@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2011 Carl-Eric Menzel <cmenzel@wicketbuch.de>
+ * and possibly other SafeModel contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wicketbuch.safemodel;
+
+import org.apache.wicket.Component;
+import org.apache.wicket.ajax.AjaxRequestTarget;
+import org.apache.wicket.behavior.Behavior;
+
+/**
+ * Remembers a {@link Fingerprint} of the component's model object after each render, so that
+ * {@link SafeModel#addChanged(AjaxRequestTarget, Component...)} can skip the component while its value is
+ * unchanged. Components without this behavior are always considered changed. A null model object is never passed to
+ * the fingerprint, it is only equal to another null model object.
+ */
+public class ChangeTrackingBehavior extends Behavior {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Uses the value itself as its fingerprint. Only suitable for small immutable values such as strings and numbers:
+     * a mutable bean is the same instance before and after a change, an entity's <code>equals()</code> usually only
+     * compares ids, and the value is kept in the page even after its model has been detached.
+     */
+    @SuppressWarnings("serial")
+    public static final Fingerprint<Object> VALUE = new Fingerprint<Object>() {
+        public Object of(final Object value) {
+            return value;
+        }
+    };
+
+    private final Fingerprint<Object> fingerprint;
+    private boolean rendered;
+    private Object renderedFingerprint;
+
+    /**
+     * @param fingerprint
+     *            computes what to compare, such as an entity's version, or {@link #VALUE} for immutable values
+     */
+    @SuppressWarnings("unchecked")
+    public ChangeTrackingBehavior(final Fingerprint<?> fingerprint) {
+        this.fingerprint = (Fingerprint<Object>) fingerprint;
+    }
+
+    @Override
+    public void afterRender(final Component component) {
+        renderedFingerprint = fingerprintOf(component);
+        rendered = true;
+    }
+
+    /**
+     * @return true if the component's model object has a different fingerprint than when the component was last
+     *         rendered, or if it has not been rendered yet
+     */
+    public boolean isChangedSinceRender(final Component component) {
+        if (!rendered) {
+            return true;
+        }
+        final Object current = fingerprintOf(component);
+        return current == null ? renderedFingerprint != null : !current.equals(renderedFingerprint);
+    }
+
+    private Object fingerprintOf(final Component component) {
+        final Object value = component.getDefaultModelObject();
+        return value != null ? fingerprint.of(value) : NoValue.INSTANCE;
+    }
+
+    /**
+     * The fingerprint of a null model object.
+     */
+    private static enum NoValue {
+        INSTANCE
+    }
+}
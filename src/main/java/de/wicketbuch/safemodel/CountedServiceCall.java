@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2011 Carl-Eric Menzel <cmenzel@wicketbuch.de>
+ * and possibly other SafeModel contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wicketbuch.safemodel;
+
+/**
+ * Page and count methods recorded for {@link SafeModel#dataProvider(Iterable)}, waiting for the {@link RowLoader}.
+ */
+public final class CountedServiceCall<T> {
+    private final ServiceCall pageCall;
+    private final ServiceCall countCall;
+
+    CountedServiceCall(final ServiceCall pageCall, final ServiceCall countCall) {
+        this.pageCall = pageCall;
+        this.countCall = countCall;
+    }
+
+    /**
+     * Finish building the data provider.
+     * 
+     * @param rowLoader
+     *            identifies rows and reloads them in later requests
+     * @return a data provider that only loads the requested page
+     */
+    public ServiceDataProvider<T> rowsLoadedBy(final RowLoader<T> rowLoader) {
+        return new ServiceDataProvider<T>(pageCall, countCall, rowLoader);
+    }
+}
@@ -0,0 +1,29 @@
+/**
+ * Copyright (C) 2011 Carl-Eric Menzel <cmenzel@wicketbuch.de>
+ * and possibly other SafeModel contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wicketbuch.safemodel;
+
+import java.io.Serializable;
+
+/**
+ * Computes what {@link ChangeTrackingBehavior} remembers about a rendered value, for example an entity's version
+ * number. Two values with equal fingerprints are considered unchanged, so the fingerprint must change whenever
+ * anything displayed changes. Fingerprints are kept in the page, so they should be small and serializable.
+ */
+public interface Fingerprint<T> extends Serializable {
+    Object of(T value);
+}
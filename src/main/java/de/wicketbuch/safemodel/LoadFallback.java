@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2011 Carl-Eric Menzel <cmenzel@wicketbuch.de>
+ * and possibly other SafeModel contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wicketbuch.safemodel;
+
+import org.apache.wicket.model.IModel;
+
+/**
+ * What a service model returns when loading takes longer than its timeout.
+ */
+public enum LoadFallback {
+    /**
+     * The value this model instance loaded successfully last time. If there is none, fail.
+     */
+    LAST_VALUE,
+    /**
+     * The default value given to {@link SafeModel#withLoadTimeout(IModel, long, LoadFallback, Object)}, or null.
+     */
+    DEFAULT,
+    /**
+     * Throw a {@link LoadTimeoutException}.
+     */
+    FAIL
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2011 Carl-Eric Menzel <cmenzel@wicketbuch.de>
+ * and possibly other SafeModel contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wicketbuch.safemodel;
+
+import org.apache.wicket.model.IModel;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Bounds the time service models built for the annotated service method may take to load. Can be overridden per
+ * model with {@link SafeModel#withLoadTimeout(IModel, long, LoadFallback)}.
+ * <p>
+ * The annotated method is then called on a thread of the {@link SafeModel#setLoadExecutor load executor}, not on the
+ * request thread. It runs without the request's open-session-in-view session, transaction and security context, and
+ * without <code>RequestCycle.get()</code>. Entities it returns are detached, so accessing their lazy associations
+ * later throws a <code>LazyInitializationException</code>. Only annotate methods that return fully loaded values and
+ * don't depend on thread-bound state.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface LoadTimeout {
+    /**
+     * @return the timeout in milliseconds
+     */
+    long value();
+
+    LoadFallback fallback() default LoadFallback.FAIL;
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2011 Carl-Eric Menzel <cmenzel@wicketbuch.de>
+ * and possibly other SafeModel contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wicketbuch.safemodel;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for service loads with a timeout, summed up over all models since startup or the last
+ * {@link #reset()}.
+ */
+public final class LoadTimeoutMetrics {
+    static final AtomicLong loads = new AtomicLong();
+    static final AtomicLong timeouts = new AtomicLong();
+    static final AtomicLong lastValueFallbacks = new AtomicLong();
+    static final AtomicLong defaultFallbacks = new AtomicLong();
+    static final AtomicLong failures = new AtomicLong();
+
+    private LoadTimeoutMetrics() {
+        // prevent instantiation
+    }
+
+    /**
+     * @return the number of loads that were started with a timeout
+     */
+    public static long getLoads() {
+        return loads.get();
+    }
+
+    /**
+     * @return the number of loads that timed out
+     */
+    public static long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return the number of timeouts answered with the last loaded value
+     */
+    public static long getLastValueFallbacks() {
+        return lastValueFallbacks.get();
+    }
+
+    /**
+     * @return the number of timeouts answered with the default value
+     */
+    public static long getDefaultFallbacks() {
+        return defaultFallbacks.get();
+    }
+
+    /**
+     * @return the number of timeouts answered with a {@link LoadTimeoutException}
+     */
+    public static long getFailures() {
+        return failures.get();
+    }
+
+    public static void reset() {
+        loads.set(0);
+        timeouts.set(0);
+        lastValueFallbacks.set(0);
+        defaultFallbacks.set(0);
+        failures.set(0);
+    }
+}
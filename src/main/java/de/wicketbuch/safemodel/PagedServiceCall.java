@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2011 Carl-Eric Menzel <cmenzel@wicketbuch.de>
+ * and possibly other SafeModel contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wicketbuch.safemodel;
+
+/**
+ * A page method recorded for {@link SafeModel#dataProvider(Iterable)}, waiting for its count method.
+ */
+public final class PagedServiceCall<T> {
+    private final ServiceCall pageCall;
+
+    PagedServiceCall(final ServiceCall pageCall) {
+        this.pageCall = pageCall;
+    }
+
+    /**
+     * @param metaCount
+     *            the result of the count method recorded with {@link SafeModel#fromService(Object)}
+     * @return the next building step
+     */
+    public CountedServiceCall<T> countedBy(final long metaCount) {
+        return new CountedServiceCall<T>(pageCall, SafeModel.recordedServiceCall());
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright (C) 2011 Carl-Eric Menzel <cmenzel@wicketbuch.de>
+ * and possibly other SafeModel contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wicketbuch.safemodel;
+
+import de.wicketbuch.safemodel.SafeModel.PropertyFinder;
+import de.wicketbuch.safemodel.SafeModel.ServiceFinder;
+import net.sf.cglib.core.ClassGenerator;
+import net.sf.cglib.core.DefaultGeneratorStrategy;
+import net.sf.cglib.core.GeneratorStrategy;
+import net.sf.cglib.core.NamingPolicy;
+import net.sf.cglib.core.Predicate;
+import net.sf.cglib.proxy.CallbackFilter;
+import net.sf.cglib.proxy.Enhancer;
+import net.sf.cglib.proxy.InvocationHandler;
+import net.sf.cglib.proxy.NoOp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates the proxy classes SafeModel needs for recording at build time, so that no bytecode has to be generated at
+ * runtime and the proxies can go into class data sharing archives like any other class. Run it after compilation with
+ * the output directory and your root classes as arguments, prefixing service classes with <code>service:</code>:
+ *
+ * <pre>
+ * java de.wicketbuch.safemodel.ProxyGenerator target/classes com.example.Customer service:com.example.CustomerService
+ * </pre>
+ *
+ * For property roots, proxies are generated for the root and for the types returned by its getters, recursively. For
+ * service roots, proxies are generated for the service and for the types its methods return. Services that are JDK
+ * proxies, such as Spring's interface-based proxies or <code>@SpringBean</code> fields of an interface type, are
+ * recorded through the interfaces the proxy implements. List all of them, separated by commas, for example
+ * <code>service:com.example.CustomerService,java.io.Serializable,...</code>.
+ * <code>setRequirePrebuiltProxies(true)</code> names the missing interfaces. Proxies of <code>Object</code> are
+ * always generated at runtime. The generated classes
+ * are listed in <code>META-INF/safemodel/proxies</code>, where SafeModel finds them at runtime. Types only known at
+ * runtime, such as subclasses of the declared property types, are still proxied at runtime.
+ */
+public final class ProxyGenerator {
+    /**
+     * Runtime types commonly found behind interface-typed properties.
+     */
+    private static final Map<Class<?>, Class<?>> commonImplementations = new HashMap<Class<?>, Class<?>>();
+    static {
+        commonImplementations.put(List.class, ArrayList.class);
+        commonImplementations.put(Map.class, HashMap.class);
+        commonImplementations.put(Set.class, HashSet.class);
+    }
+
+    private static final CallbackFilter IGNORE_BRIDGE_METHODS = new CallbackFilter() {
+        public int accept(final Method method) {
+            return method.isBridge() ? 1 : 0;
+        }
+    };
+
+    private final File outputDirectory;
+    private final Set<Class<?>> visited = new HashSet<Class<?>>();
+    private final Set<String> generated = new LinkedHashSet<String>();
+
+    public ProxyGenerator(final File outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: ProxyGenerator <output directory> [service:]<root class>...");
+            System.exit(1);
+        }
+        final ProxyGenerator generator = new ProxyGenerator(new File(args[0]));
+        final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("service:")) {
+                final String[] names = args[i].substring("service:".length()).split(",");
+                final Class<?>[] types = new Class<?>[names.length];
+                for (int j = 0; j < names.length; j++) {
+                    types[j] = Class.forName(names[j].trim(), false, loader);
+                }
+                generator.addServiceRoot(types);
+            } else {
+                generator.addPropertyRoot(Class.forName(args[i], false, loader));
+            }
+        }
+        generator.writeIndex();
+        System.out.println("SafeModel: generated " + generator.generated.size() + " proxy classes");
+    }
+
+    /**
+     * Generate the proxies needed to record property paths starting at the given type.
+     */
+    public ProxyGenerator addPropertyRoot(final Class<?> type) throws IOException {
+        // getters declared to return Object are recorded with a bare PropertyFinder
+        generate(PropertyFinder.class);
+        walk(type);
+        return this;
+    }
+
+    /**
+     * Generate the proxies needed to record calls to the given service type, or to a JDK proxy implementing all of the
+     * given interfaces.
+     */
+    public ProxyGenerator addServiceRoot(final Class<?>... types) throws IOException {
+        if (types.length == 1) {
+            generate(types[0], ServiceFinder.class);
+        } else {
+            // JDK proxies implementing several interfaces are recorded with a proxy of ServiceFinder
+            generate(ServiceFinder.class, types);
+        }
+        for (final Class<?> type : types) {
+            for (final Method method : type.getMethods()) {
+                final Class<?> returnType = method.getReturnType();
+                if (isProxyable(returnType)) {
+                    generateWithImplementation(returnType);
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Write the index of all classes generated so far.
+     *
+     * @return the names of the generated classes
+     */
+    public Set<String> writeIndex() throws IOException {
+        final File index = new File(outputDirectory, SafeModel.PREBUILT_PROXY_INDEX);
+        index.getParentFile().mkdirs();
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(index), "UTF-8");
+        try {
+            for (final String name : generated) {
+                writer.write(name);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        return generated;
+    }
+
+    private void walk(final Type type) throws IOException {
+        if (type instanceof ParameterizedType) {
+            walk(((ParameterizedType) type).getRawType());
+            for (final Type argument : ((ParameterizedType) type).getActualTypeArguments()) {
+                walk(argument);
+            }
+        } else if (type instanceof Class) {
+            final Class<?> c = (Class<?>) type;
+            if (!isProxyable(c) || !visited.add(c)) {
+                return;
+            }
+            generateWithImplementation(c, PropertyFinder.class);
+            for (final Method method : c.getMethods()) {
+                if (isGetter(method)) {
+                    walk(method.getGenericReturnType());
+                }
+            }
+        }
+    }
+
+    /**
+     * Recording proxies the runtime type of each value, so generate a proxy for the usual implementation of
+     * interface-typed values, too.
+     */
+    private void generateWithImplementation(final Class<?> type, final Class<?>... ancillaryTypes) throws IOException {
+        generate(type, ancillaryTypes);
+        final Class<?> implementation = commonImplementations.get(type);
+        if (implementation != null) {
+            generate(implementation, ancillaryTypes);
+        }
+    }
+
+    private static boolean isGetter(final Method method) {
+        final String name = method.getName();
+        return method.getParameterTypes().length == 0 && !Object.class.equals(method.getDeclaringClass())
+                && ((name.startsWith("get") && name.length() > 3) || (name.startsWith("is") && name.length() > 2));
+    }
+
+    private static boolean isProxyable(final Class<?> type) {
+        return !type.isPrimitive() && !type.isArray() && !Modifier.isFinal(type.getModifiers())
+                && !Object.class.equals(type);
+    }
+
+    /**
+     * Generate a proxy class the same way jMock's ClassImposteriser does, but under the name
+     * {@link SafeModel#prebuiltProxyName(Class, Class[])} expects, and write it to the output directory.
+     */
+    private void generate(final Class<?> mockedType, final Class<?>... ancillaryTypes) throws IOException {
+        final String name = SafeModel.prebuiltProxyName(mockedType, ancillaryTypes);
+        if (name == null || generated.contains(name)) {
+            return;
+        }
+        final Enhancer enhancer = new Enhancer() {
+            @Override
+            protected void filterConstructors(final Class superclass, final List constructors) {
+                // proxies are instantiated without calling a constructor, so keep them all
+            }
+        };
+        enhancer.setUseCache(false);
+        enhancer.setUseFactory(true);
+        if (mockedType.isInterface()) {
+            enhancer.setSuperclass(Object.class);
+            final Class<?>[] interfaces = new Class<?>[ancillaryTypes.length + 1];
+            interfaces[0] = mockedType;
+            System.arraycopy(ancillaryTypes, 0, interfaces, 1, ancillaryTypes.length);
+            enhancer.setInterfaces(interfaces);
+        } else {
+            enhancer.setSuperclass(mockedType);
+            enhancer.setInterfaces(ancillaryTypes);
+        }
+        enhancer.setCallbackTypes(new Class[] { InvocationHandler.class, NoOp.class });
+        enhancer.setCallbackFilter(IGNORE_BRIDGE_METHODS);
+        enhancer.setNamingPolicy(new NamingPolicy() {
+            public String getClassName(final String prefix, final String source, final Object key,
+                    final Predicate names) {
+                return name;
+            }
+        });
+        final CapturingStrategy strategy = new CapturingStrategy();
+        enhancer.setStrategy(strategy);
+        try {
+            enhancer.createClass();
+        } catch (final RuntimeException e) {
+            if (strategy.bytes == null) {
+                System.err.println("SafeModel: skipping " + name + ", it will be generated at runtime: " + e);
+                return;
+            }
+            // the strategy stopped cglib from defining the class after capturing it
+        } catch (final LinkageError e) {
+            System.err.println("SafeModel: skipping " + name + ", it will be generated at runtime: " + e);
+            return;
+        }
+        final File classFile = new File(outputDirectory, name.replace('.', File.separatorChar) + ".class");
+        classFile.getParentFile().mkdirs();
+        final FileOutputStream out = new FileOutputStream(classFile);
+        try {
+            out.write(strategy.bytes);
+        } finally {
+            out.close();
+        }
+        generated.add(name);
+    }
+
+    /**
+     * Captures the generated bytecode and then aborts, so cglib doesn't define the class. Defining it would leave the
+     * proxy behind in the caller's class loader, and defining it anywhere else would fail for package-private
+     * superclasses.
+     */
+    private static final class CapturingStrategy implements GeneratorStrategy {
+        private byte[] bytes;
+
+        public byte[] generate(final ClassGenerator generator) throws Exception {
+            bytes = DefaultGeneratorStrategy.INSTANCE.generate(generator);
+            throw new IllegalStateException("captured");
+        }
+    }
+}
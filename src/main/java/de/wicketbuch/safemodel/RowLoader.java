@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2011 Carl-Eric Menzel <cmenzel@wicketbuch.de>
+ * and possibly other SafeModel contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wicketbuch.safemodel;
+
+import java.io.Serializable;
+
+/**
+ * Identifies the rows of a {@link ServiceDataProvider}, so that a row can be reloaded in a later request even if
+ * rows were inserted or deleted in between.
+ */
+public interface RowLoader<T> extends Serializable {
+    /**
+     * @return the id of the given row, kept in the row's model
+     */
+    Serializable idOf(T row);
+
+    /**
+     * @return the row with the given id, or null if it does not exist anymore
+     */
+    T load(Serializable id);
+}
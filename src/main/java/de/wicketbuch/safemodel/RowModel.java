@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2011 Carl-Eric Menzel <cmenzel@wicketbuch.de>
+ * and possibly other SafeModel contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wicketbuch.safemodel;
+
+import org.apache.wicket.model.LoadableDetachableModel;
+
+import java.io.Serializable;
+
+/**
+ * Keeps the id of a row and reloads the row with a {@link RowLoader}.
+ */
+public class RowModel<T> extends LoadableDetachableModel<T> {
+    private final RowLoader<T> rowLoader;
+    private final Serializable id;
+
+    public RowModel(final RowLoader<T> rowLoader, final T row) {
+        super(row);
+        this.rowLoader = rowLoader;
+        this.id = rowLoader.idOf(row);
+    }
+
+    @Override
+    protected T load() {
+        return rowLoader.load(id);
+    }
+}
@@ -18,6 +18,13 @@
 package de.wicketbuch.safemodel;
 
 import com.googlecode.gentyref.GenericTypeReflector;
+import net.sf.cglib.proxy.Callback;
+import net.sf.cglib.proxy.Factory;
+import net.sf.cglib.proxy.InvocationHandler;
+import net.sf.cglib.proxy.NoOp;
+import org.apache.wicket.Component;
+import org.apache.wicket.ajax.AjaxRequestTarget;
+import org.apache.wicket.markup.repeater.data.IDataProvider;
 import org.apache.wicket.model.IModel;
 import org.apache.wicket.model.IObjectClassAwareModel;
 import org.apache.wicket.model.LoadableDetachableModel;
@@ -26,16 +33,45 @@ import org.apache.wicket.util.lang.Exceptions;
 import org.jmock.api.Invocation;
 import org.jmock.api.Invokable;
 import org.jmock.lib.legacy.ClassImposteriser;
+import org.objenesis.Objenesis;
+import org.objenesis.ObjenesisStd;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.*;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class SafeModel {
     private static final String CGLIB_NAME_MARKER = "$$";
 
     private enum Mode {
-        PROPERTY, SERVICE
+        PROPERTY, SERVICE, PAGE
     }
 
     private SafeModel() {
@@ -61,44 +97,31 @@ public final class SafeModel {
         }
 
         public Object invoke(final Invocation invocation) throws Throwable {
+            final CallSiteRecording recording = callSiteRecording.get();
+            if (recording == null) {
+                return record(invocation);
+            }
             final Method method = invocation.getInvokedMethod();
-            final String methodName = method.getName();
-            final StringBuilder pathBuilder = path.get();
-            final Object current;
-            {
-                final Object maybeModel = currentTarget.get();
-                if (maybeModel == null) {
-                    current = null;
-                } else if (maybeModel instanceof IModel) {
-                    current = ((IModel<?>) maybeModel).getObject();
-                } else {
-                    current = maybeModel;
+            if (recording.isReplaying()) {
+                if (recording.replays(method)) {
+                    return recording.nextReplayedResult();
                 }
+                recording.fallBack();
+                return record(invocation);
             }
+            final Object result = record(invocation);
+            recording.recordStep(method, invocation.getParameterCount(), result);
+            return result;
+        }
+
+        private Object record(final Invocation invocation) throws Throwable {
+            final Method method = invocation.getInvokedMethod();
+            final StringBuilder pathBuilder = path.get();
+            final Object current = currentTargetObject();
             final Object callResult = current != null ? method.invoke(current, invocation.getParametersAsArray())
                     : null;
             final Class<?> returnType = callResult != null ? callResult.getClass() : method.getReturnType();
-            if (methodName.equals("get") && (invocation.getParameterCount() == 1)) {
-                pathBuilder.append("[");
-                pathBuilder.append(invocation.getParameter(0));
-                pathBuilder.append("]");
-            } else if (methodName.startsWith("get")) {
-                final String propertyName = new StringBuilder().append(Character.toLowerCase(methodName.charAt(3)))
-                  .append(methodName.substring(4)).toString();
-                if (pathBuilder.length() > 0) {
-                    pathBuilder.append(".");
-                }
-                pathBuilder.append(propertyName);
-            } else if (methodName.startsWith("is")) {
-                final String propertyName = new StringBuilder().append(Character.toLowerCase(methodName.charAt(2)))
-                  .append(methodName.substring(3)).toString();
-                if (pathBuilder.length() > 0) {
-                    pathBuilder.append(".");
-                }
-                pathBuilder.append(propertyName);
-            } else {
-                throw new UnsupportedOperationException("SafeModel only supports JavaBean-style getters");
-            }
+            appendToPath(pathBuilder, method.getName(), invocation.getParametersAsArray());
             currentTarget.set(callResult);
             currentType.set(returnType);
             if (returnType.isPrimitive()) {
@@ -108,13 +131,13 @@ public final class SafeModel {
                 return callResult;
             } else {
                 if (Object.class.equals(returnType)) {
-                    return ClassImposteriser.INSTANCE.imposterise(INSTANCE, PropertyFinder.class);
+                    return imposteriseClass(INSTANCE, PropertyFinder.class);
                 } else {
                     try {
-                        return ClassImposteriser.INSTANCE.imposterise(INSTANCE, returnType, PropertyFinder.class);
+                        return imposteriseClass(INSTANCE, returnType, PropertyFinder.class);
                     } catch (IllegalArgumentException e) {
                         if (Exceptions.findCause(e, IllegalAccessError.class) != null) {
-                            return ClassImposteriser.INSTANCE.imposterise(INSTANCE, lookForInterfaces(returnType),
+                            return imposteriseClass(INSTANCE, lookForInterfaces(returnType),
                                     PropertyFinder.class);
                         } else {
                             throw e;
@@ -124,6 +147,42 @@ public final class SafeModel {
             }
         }
 
+        private static Object currentTargetObject() {
+            final Object maybeModel = currentTarget.get();
+            if (maybeModel == null) {
+                return null;
+            } else if (maybeModel instanceof IModel) {
+                return ((IModel<?>) maybeModel).getObject();
+            } else {
+                return maybeModel;
+            }
+        }
+
+        private static void appendToPath(final StringBuilder pathBuilder, final String methodName,
+                final Object[] arguments) {
+            if (methodName.equals("get") && (arguments.length == 1)) {
+                pathBuilder.append("[");
+                pathBuilder.append(arguments[0]);
+                pathBuilder.append("]");
+            } else if (methodName.startsWith("get")) {
+                final String propertyName = new StringBuilder().append(Character.toLowerCase(methodName.charAt(3)))
+                  .append(methodName.substring(4)).toString();
+                if (pathBuilder.length() > 0) {
+                    pathBuilder.append(".");
+                }
+                pathBuilder.append(propertyName);
+            } else if (methodName.startsWith("is")) {
+                final String propertyName = new StringBuilder().append(Character.toLowerCase(methodName.charAt(2)))
+                  .append(methodName.substring(3)).toString();
+                if (pathBuilder.length() > 0) {
+                    pathBuilder.append(".");
+                }
+                pathBuilder.append(propertyName);
+            } else {
+                throw new UnsupportedOperationException("SafeModel only supports JavaBean-style getters");
+            }
+        }
+
         @SuppressWarnings("unchecked")
         private static final List<Class<?>> wellKnownMockableInterfaces = new ArrayList<Class<?>>() {
             {
@@ -141,6 +200,260 @@ public final class SafeModel {
         }
     }
 
+    private static volatile boolean callSiteCaching = false;
+    private static final ConcurrentMap<StackTraceElement, CallSite> callSites = new ConcurrentHashMap<StackTraceElement, CallSite>();
+    private static final ThreadLocal<CallSiteRecording> callSiteRecording = new ThreadLocal<CallSiteRecording>();
+
+    /**
+     * Switch call site caching on or off. When on, {@link #from(Object)} remembers the getters called from each call
+     * site, the proxies they returned and the resulting path and type. Later calls from the same line with the same
+     * root type replay these instead of creating proxies and invoking getters. Call sites that pass parameters (such
+     * as <code>get(0)</code>) or that start differently shaped chains on the same line are always recorded in full.
+     * Note that the model's object class is the one recorded first, even if the property later holds a subclass.
+     * Finding the call site is only cheap with the StackWalker of Java 9 and later, so this has no effect on older
+     * JVMs.
+     * 
+     * @param enabled
+     *            whether to cache call sites
+     * @return whether call site caching is on now
+     */
+    public static boolean setCallSiteCaching(final boolean enabled) {
+        callSiteCaching = enabled && CallSiteLocator.walker != null;
+        if (!callSiteCaching) {
+            callSites.clear();
+        }
+        return callSiteCaching;
+    }
+
+    /**
+     * The recording of one call site. Only holds proxies and zero values, never the recorded beans themselves.
+     */
+    private static final class CallSite {
+        private final Class<?> rootClass;
+        private final Object rootProxy;
+        private final Method[] steps;
+        private final Object[] results;
+        private final String path;
+        private final Class<?> resultType;
+
+        private CallSite(final Class<?> rootClass, final Object rootProxy, final Method[] steps,
+                final Object[] results, final String path, final Class<?> resultType) {
+            this.rootClass = rootClass;
+            this.rootProxy = rootProxy;
+            this.steps = steps;
+            this.results = results;
+            this.path = path;
+            this.resultType = resultType;
+        }
+    }
+
+    private static final CallSite UNCACHEABLE = new CallSite(null, null, new Method[0], new Object[0], null, null);
+
+    @SuppressWarnings("serial")
+    private static final Map<Class<?>, Object> zeroValues = new HashMap<Class<?>, Object>() {
+        {
+            put(boolean.class, Boolean.FALSE);
+            put(char.class, Character.valueOf((char) 0));
+            put(byte.class, Byte.valueOf((byte) 0));
+            put(short.class, Short.valueOf((short) 0));
+            put(int.class, Integer.valueOf(0));
+            put(long.class, Long.valueOf(0));
+            put(float.class, Float.valueOf(0));
+            put(double.class, Double.valueOf(0));
+        }
+    };
+
+    /**
+     * Per-thread state while recording or replaying a call site.
+     */
+    private static final class CallSiteRecording {
+        private final StackTraceElement site;
+        private final CallSite replayed;
+        private int step;
+        private final Class<?> rootClass;
+        private final Object rootProxy;
+        private final List<Method> steps = new ArrayList<Method>();
+        private final List<Object> results = new ArrayList<Object>();
+        private boolean cacheable = true;
+
+        private CallSiteRecording(final StackTraceElement site, final CallSite replayed) {
+            this.site = site;
+            this.replayed = replayed;
+            this.rootClass = null;
+            this.rootProxy = null;
+        }
+
+        private CallSiteRecording(final StackTraceElement site, final Class<?> rootClass, final Object rootProxy) {
+            this.site = site;
+            this.replayed = null;
+            this.rootClass = rootClass;
+            this.rootProxy = rootProxy;
+        }
+
+        private boolean isReplaying() {
+            return replayed != null;
+        }
+
+        private boolean replays(final Method method) {
+            return step < replayed.steps.length && replayed.steps[step].equals(method);
+        }
+
+        private Object nextReplayedResult() {
+            return replayed.results[step++];
+        }
+
+        private void recordStep(final Method method, final int parameterCount, final Object result) {
+            if (parameterCount > 0) {
+                cacheable = false;
+            }
+            steps.add(method);
+            final Class<?> declaredType = method.getReturnType();
+            if (declaredType.isPrimitive()) {
+                results.add(zeroValues.get(declaredType));
+            } else if (result instanceof PropertyFinder) {
+                results.add(result);
+            } else {
+                results.add(null);
+            }
+        }
+
+        /**
+         * The chain being replayed is not the one that was cached for this line. Evaluate the replayed part for real
+         * and continue with a normal recording.
+         */
+        private void fallBack() throws Exception {
+            callSites.put(site, UNCACHEABLE);
+            callSiteRecording.remove();
+            final StringBuilder pathBuilder = path.get();
+            for (int i = 0; i < step; i++) {
+                final Method method = replayed.steps[i];
+                final Object current = PropertyFinderImpl.currentTargetObject();
+                final Object callResult = current != null ? method.invoke(current) : null;
+                PropertyFinderImpl.appendToPath(pathBuilder, method.getName(), new Object[0]);
+                currentTarget.set(callResult);
+                currentType.set(callResult != null ? callResult.getClass() : method.getReturnType());
+            }
+        }
+
+        /**
+         * Called by {@link SafeModel#model(Object)} before it reads the recorded path and type.
+         */
+        private void finish() throws Exception {
+            if (isReplaying()) {
+                if (step == replayed.steps.length) {
+                    path.set(new StringBuilder(replayed.path));
+                    currentType.set(replayed.resultType);
+                } else {
+                    fallBack();
+                }
+            } else if (!cacheable) {
+                callSites.put(site, UNCACHEABLE);
+            } else if (!steps.isEmpty()) {
+                callSites.put(site, new CallSite(rootClass, rootProxy, steps.toArray(new Method[steps.size()]),
+                        results.toArray(), path.get().toString(), (Class<?>) currentType.get()));
+            }
+        }
+    }
+
+    /**
+     * Finds the line that called {@link SafeModel#from(Object)} with a StackWalker, which only looks at the top few
+     * frames. Capturing the whole stack with a Throwable instead would cost more than replaying saves on the deep
+     * stacks of a Wicket request.
+     */
+    private static final class CallSiteLocator implements java.lang.reflect.InvocationHandler {
+        /**
+         * Frames above the caller: {@link #callerOfFrom()}, {@link SafeModel#startPropertyRecording(Class)} and
+         * {@link SafeModel#from(Object)}.
+         */
+        private static final int SKIPPED_FRAMES = 3;
+
+        private static final Object walker;
+        private static final Method walk;
+        private static final Object findCaller;
+        private static final Method skip;
+        private static final Method findFirst;
+        private static final Method orElse;
+        private static final Method toStackTraceElement;
+
+        static {
+            Object w = null;
+            Method wa = null;
+            Object f = null;
+            Method s = null;
+            Method ff = null;
+            Method oe = null;
+            Method ste = null;
+            try {
+                // compiled for Java 5, so StackWalker can only be used reflectively
+                final Class<?> walkerClass = Class.forName("java.lang.StackWalker");
+                final Class<?> functionClass = Class.forName("java.util.function.Function");
+                final Class<?> streamClass = Class.forName("java.util.stream.Stream");
+                final Class<?> optionalClass = Class.forName("java.util.Optional");
+                w = walkerClass.getMethod("getInstance").invoke(null);
+                wa = walkerClass.getMethod("walk", functionClass);
+                f = Proxy.newProxyInstance(SafeModel.class.getClassLoader(), new Class<?>[] { functionClass },
+                        new CallSiteLocator());
+                s = streamClass.getMethod("skip", long.class);
+                ff = streamClass.getMethod("findFirst");
+                oe = optionalClass.getMethod("orElse", Object.class);
+                ste = Class.forName("java.lang.StackWalker$StackFrame").getMethod("toStackTraceElement");
+            } catch (final Exception e) {
+                w = null;
+            }
+            walker = w;
+            walk = wa;
+            findCaller = f;
+            skip = s;
+            findFirst = ff;
+            orElse = oe;
+            toStackTraceElement = ste;
+        }
+
+        /**
+         * @return the caller of from(), or null if it has no line number
+         */
+        private static StackTraceElement callerOfFrom() {
+            final StackTraceElement caller;
+            try {
+                caller = (StackTraceElement) walk.invoke(walker, findCaller);
+            } catch (final Exception e) {
+                throw new RuntimeException(e);
+            }
+            return caller != null && caller.getLineNumber() >= 0 ? caller : null;
+        }
+
+        /**
+         * The function passed to StackWalker.walk(): <code>frames.skip(3).findFirst().orElse(null)</code>, converted
+         * to a StackTraceElement.
+         */
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            if (!"apply".equals(method.getName())) {
+                return method.invoke(this, args);
+            }
+            final Object frame = orElse.invoke(findFirst.invoke(skip.invoke(args[0], Long.valueOf(SKIPPED_FRAMES))),
+                    (Object) null);
+            return frame != null ? toStackTraceElement.invoke(frame) : null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <U> U startPropertyRecording(final Class<U> classToImposterize) {
+        if (callSiteCaching) {
+            final StackTraceElement site = CallSiteLocator.callerOfFrom();
+            final CallSite cached = site != null ? callSites.get(site) : UNCACHEABLE;
+            if (cached != UNCACHEABLE) {
+                if (cached != null && cached.rootClass == classToImposterize) {
+                    callSiteRecording.set(new CallSiteRecording(site, cached));
+                    return (U) cached.rootProxy;
+                }
+                final U proxy = imposterise(classToImposterize, PropertyFinderImpl.INSTANCE, PropertyFinder.class);
+                callSiteRecording.set(new CallSiteRecording(site, classToImposterize, proxy));
+                return proxy;
+            }
+        }
+        return imposterise(classToImposterize, PropertyFinderImpl.INSTANCE, PropertyFinder.class);
+    }
+
     /**
      * Build the model started by {@link SafeModel#from(Object)}.
      * 
@@ -154,17 +467,38 @@ public final class SafeModel {
             return propertyModel(metaTarget);
         } else if (currentMode == Mode.SERVICE) {
             return serviceModel(metaTarget);
+        } else if (currentMode == Mode.PAGE) {
+            throw new IllegalStateException("a call recorded with pagedFromService() can only be passed to "
+                    + "dataProvider()");
         } else {
             throw new IllegalStateException("No model was started - did you forget to use from() or fromService()?");
         }
     }
 
+    /**
+     * Add only those of the given components to the Ajax target whose model object has changed since they were last
+     * rendered. Components without a {@link ChangeTrackingBehavior} are always added.
+     * 
+     * @param target
+     *            the current Ajax request target
+     * @param components
+     *            the candidates for repainting
+     */
+    public static void addChanged(final AjaxRequestTarget target, final Component... components) {
+        for (final Component component : components) {
+            final List<ChangeTrackingBehavior> trackers = component.getBehaviors(ChangeTrackingBehavior.class);
+            if (trackers.isEmpty() || trackers.get(0).isChangedSinceRender(component)) {
+                target.add(component);
+            }
+        }
+    }
+
     private abstract static class TypeAwareLDM<T> extends LoadableDetachableModel<T> implements
             IObjectClassAwareModel<T> {
         private final Class<T> type;
 
         private TypeAwareLDM(final Class<T> type) {
-            this.type = (Class<T>) unproxy(type)[0];
+            this.type = unproxiedType(type);
         }
 
         public Class<T> getObjectClass() {
@@ -172,6 +506,15 @@ public final class SafeModel {
         }
     }
 
+    /**
+     * The type a model built by {@link SafeModel#model(Object)} reports, without the recording proxy. Resolved when the
+     * model is built, since the proxy classes must not end up in serialized pages.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Class<T> unproxiedType(final Class<T> type) {
+        return type != null ? (Class<T>) unproxy(type)[0] : null;
+    }
+
     @SuppressWarnings("unchecked")
     private static Class<?>[] unproxy(final Class<?> type) {
         if (type == null) {
@@ -198,39 +541,254 @@ public final class SafeModel {
 
     @SuppressWarnings("unchecked")
     private static <T> IModel<T> serviceModel(final T metaTarget) {
+        final ServiceCall call = recordedServiceCall();
+        final Class<T> modelObjectType = (Class<T>) (metaTarget != null ? metaTarget.getClass() : null);
+        final ServiceLDM<T> model = new ServiceLDM<T>(modelObjectType, call);
+        final LoadTimeout timeout = call.getMethod().getAnnotation(LoadTimeout.class);
+        if (timeout != null) {
+            model.timeoutMillis = timeout.value();
+            model.fallback = timeout.fallback();
+        }
+        return model;
+    }
+
+    /**
+     * Bound the time the given service model may take to load. Loading then happens on a thread of the
+     * {@link #setLoadExecutor(ExecutorService) load executor}, so the service must not depend on thread-bound state:
+     * it runs without the request's open-session-in-view session, transaction and security context, and without
+     * <code>RequestCycle.get()</code>. Entities it returns are detached, so their lazy associations can't be loaded
+     * later.
+     * 
+     * @param model
+     *            a model built with {@link #fromService(Object)}
+     * @param timeoutMillis
+     *            the timeout in milliseconds, or 0 for no timeout
+     * @param fallback
+     *            what to do when loading times out
+     * @return the given model
+     */
+    public static <T> IModel<T> withLoadTimeout(final IModel<T> model, final long timeoutMillis,
+            final LoadFallback fallback) {
+        return withLoadTimeout(model, timeoutMillis, fallback, null);
+    }
+
+    /**
+     * Like {@link #withLoadTimeout(IModel, long, LoadFallback)}, with the value to return for
+     * {@link LoadFallback#DEFAULT}.
+     */
+    public static <T> IModel<T> withLoadTimeout(final IModel<T> model, final long timeoutMillis,
+            final LoadFallback fallback, final T defaultValue) {
+        if (!(model instanceof ServiceLDM)) {
+            throw new IllegalArgumentException("load timeouts only apply to models built with fromService()");
+        }
+        final ServiceLDM<T> serviceModel = (ServiceLDM<T>) model;
+        serviceModel.timeoutMillis = timeoutMillis;
+        serviceModel.fallback = fallback;
+        serviceModel.defaultValue = defaultValue;
+        return model;
+    }
+
+    /**
+     * The number of threads of the default load executor.
+     */
+    public static final int DEFAULT_LOAD_THREADS = 32;
+
+    /**
+     * The number of loads the default load executor queues while all its threads are busy.
+     */
+    public static final int DEFAULT_LOAD_QUEUE_SIZE = 1000;
+
+    private static volatile ExecutorService loadExecutor;
+
+    /**
+     * Set the executor that runs service loads with a timeout. By default, a pool of {@link #DEFAULT_LOAD_THREADS}
+     * daemon threads with a queue of {@link #DEFAULT_LOAD_QUEUE_SIZE} loads is used. Time spent in the queue counts
+     * against the timeout. Note that a load that timed out keeps its thread busy until the service method returns. A
+     * load the executor rejects, for example because the queue filled up behind threads hanging on a slow backend, is
+     * treated like a timeout.
+     * 
+     * @param executor
+     *            the executor to use, or null for the default
+     */
+    public static void setLoadExecutor(final ExecutorService executor) {
+        loadExecutor = executor;
+    }
+
+    private static ExecutorService getLoadExecutor() {
+        if (loadExecutor == null) {
+            synchronized (SafeModel.class) {
+                if (loadExecutor == null) {
+                    loadExecutor = new ThreadPoolExecutor(DEFAULT_LOAD_THREADS, DEFAULT_LOAD_THREADS, 0,
+                            TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(DEFAULT_LOAD_QUEUE_SIZE),
+                            new ThreadFactory() {
+                                private final AtomicInteger count = new AtomicInteger();
+
+                                public Thread newThread(final Runnable runnable) {
+                                    final Thread thread = new Thread(runnable, "SafeModel-loader-"
+                                            + count.incrementAndGet());
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+                }
+            }
+        }
+        return loadExecutor;
+    }
+
+    private static final class ServiceLDM<T> extends TypeAwareLDM<T> {
+        private final ServiceCall serviceCall;
+        private long timeoutMillis;
+        private LoadFallback fallback = LoadFallback.FAIL;
+        private T defaultValue;
+        private transient T lastValue;
+        private transient boolean hasLastValue;
+
+        private ServiceLDM(final Class<T> type, final ServiceCall serviceCall) {
+            super(type);
+            this.serviceCall = serviceCall;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected T load() {
+            if (timeoutMillis <= 0) {
+                return (T) serviceCall.invoke();
+            }
+            LoadTimeoutMetrics.loads.incrementAndGet();
+            final Future<Object> future;
+            try {
+                future = getLoadExecutor().submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        return serviceCall.invoke();
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                // the queue is full, waiting would run into the timeout anyway
+                LoadTimeoutMetrics.timeouts.incrementAndGet();
+                return loadTimedOut();
+            }
+            try {
+                final T value = (T) future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+                lastValue = value;
+                hasLastValue = true;
+                return value;
+            } catch (final TimeoutException e) {
+                future.cancel(true);
+                LoadTimeoutMetrics.timeouts.incrementAndGet();
+                return loadTimedOut();
+            } catch (final InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                } else if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                } else {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        }
+
+        private T loadTimedOut() {
+            if (fallback == LoadFallback.LAST_VALUE && hasLastValue) {
+                LoadTimeoutMetrics.lastValueFallbacks.incrementAndGet();
+                return lastValue;
+            } else if (fallback == LoadFallback.DEFAULT) {
+                LoadTimeoutMetrics.defaultFallbacks.incrementAndGet();
+                return defaultValue;
+            } else {
+                LoadTimeoutMetrics.failures.incrementAndGet();
+                throw new LoadTimeoutException(serviceCall.methodName + " did not load within " + timeoutMillis
+                        + "ms");
+            }
+        }
+    }
+
+    static ServiceCall recordedServiceCall() {
+        return recordedServiceCall(Mode.SERVICE);
+    }
+
+    private static ServiceCall recordedServiceCall(final Mode expectedMode) {
+        final Mode currentMode = mode.get();
         final Object target = root.get();
         final Method method = serviceMethod.get();
         final Object[] arguments = serviceArguments.get();
         clear();
+        if (currentMode != expectedMode) {
+            throw new IllegalStateException("No service call was recorded - did you forget to use "
+                    + (expectedMode == Mode.PAGE ? "pagedFromService()?" : "fromService()?"));
+        }
         if (target == null) {
             throw new IllegalArgumentException("target not set - did you forget to use fromService()?");
         }
         if (method == null) {
             throw new IllegalArgumentException("method not set - did you forget to use fromService()?");
         }
-        final Class<T> modelObjectType = (Class<T>) (metaTarget != null ? metaTarget.getClass() : null);
-        return new TypeAwareLDM<T>(modelObjectType) {
-            @Override
-            protected T load() {
-                try {
-                    return (T) method.invoke(target, arguments);
-                } catch (final InvocationTargetException e) {
-                    if (e.getCause() instanceof RuntimeException) {
-                        throw (RuntimeException) e.getCause();
-                    } else {
-                        throw new RuntimeException(e.getCause());
-                    }
-                } catch (final IllegalArgumentException e) {
-                    throw e;
-                } catch (final IllegalAccessException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        };
+        return new ServiceCall(target, method, arguments);
+    }
+
+    /**
+     * Start building a paged {@link IDataProvider} from a service method recorded with
+     * {@link SafeModel#pagedFromService(Object)}. The last two parameters of the method must be the offset of the first
+     * row and the maximum number of rows (<code>int</code> or <code>long</code>), the values passed while recording are
+     * ignored. Then pass the count method to {@link PagedServiceCall#countedBy(long)} and say how to reload single
+     * rows:
+     * 
+     * <pre>
+     * IDataProvider&lt;User&gt; users = dataProvider(pagedFromService(userService).findUsers(&quot;smith&quot;, 0, 0))
+     *         .countedBy(fromService(userService).countUsers(&quot;smith&quot;)).rowsLoadedBy(new UserLoader());
+     * </pre>
+     * 
+     * Neither method is called while recording, as long as the count method returns a primitive.
+     * 
+     * @param metaPage
+     *            the result of the recorded page method
+     * @return the next building step
+     */
+    public static <T> PagedServiceCall<T> dataProvider(final Iterable<T> metaPage) {
+        return new PagedServiceCall<T>(recordedPageCall());
+    }
+
+    /**
+     * Like {@link #dataProvider(Iterable)}, for page methods that return an {@link Iterator} to stream their rows.
+     * 
+     * @param metaPage
+     *            the result of the recorded page method
+     * @return the next building step
+     */
+    public static <T> PagedServiceCall<T> dataProvider(final Iterator<T> metaPage) {
+        return new PagedServiceCall<T>(recordedPageCall());
+    }
+
+    private static ServiceCall recordedPageCall() {
+        final ServiceCall call = recordedServiceCall(Mode.PAGE);
+        final Class<?>[] types = call.parameterTypes;
+        if (types.length < 2 || !isIndexType(types[types.length - 2]) || !isIndexType(types[types.length - 1])) {
+            throw new IllegalArgumentException("the page method " + call.methodName
+                    + " must take the offset and the limit as its last two parameters");
+        }
+        return call;
+    }
+
+    private static boolean isIndexType(final Class<?> type) {
+        return int.class.equals(type) || long.class.equals(type) || Integer.class.equals(type)
+                || Long.class.equals(type);
     }
 
     @SuppressWarnings("unchecked")
     private static <T> IModel<T> propertyModel(final T metaTarget) {
+        final CallSiteRecording recording = callSiteRecording.get();
+        if (recording != null) {
+            try {
+                recording.finish();
+            } catch (final Exception e) {
+                clear();
+                throw new RuntimeException(e);
+            }
+        }
         final Object target = root.get();
         final StringBuilder pathBuilder = path.get();
         final Class<T> modelObjectType = (Class<T>) (currentType.get());
@@ -241,15 +799,53 @@ public final class SafeModel {
         if (pathBuilder == null) {
             throw new IllegalArgumentException("path not set - did you forget to use from()?");
         }
+        if (target instanceof SharedRoot) {
+            return intern(modelObjectType, target, pathBuilder.toString(), null);
+        }
         return new TypeAwarePropModel<T>(modelObjectType, target, pathBuilder.toString());
     }
 
+    /**
+     * Shared roots are application-scoped, so they are kept for the lifetime of the application. The models are only
+     * weakly referenced.
+     */
+    private static final ConcurrentMap<Object, ConcurrentMap<String, WeakReference<SharedPropModel<?>>>> internedModels = new ConcurrentHashMap<Object, ConcurrentMap<String, WeakReference<SharedPropModel<?>>>>();
+
+    @SuppressWarnings("unchecked")
+    private static <T> SharedPropModel<T> intern(final Class<T> type, final Object target, final String expression,
+            final SharedPropModel<T> candidate) {
+        ConcurrentMap<String, WeakReference<SharedPropModel<?>>> byPath = internedModels.get(target);
+        if (byPath == null) {
+            final ConcurrentMap<String, WeakReference<SharedPropModel<?>>> created = new ConcurrentHashMap<String, WeakReference<SharedPropModel<?>>>();
+            byPath = internedModels.putIfAbsent(target, created);
+            if (byPath == null) {
+                byPath = created;
+            }
+        }
+        final Class<T> objectClass = unproxiedType(type);
+        while (true) {
+            final WeakReference<SharedPropModel<?>> reference = byPath.get(expression);
+            final SharedPropModel<?> existing = reference != null ? reference.get() : null;
+            if (existing != null && existing.getObjectClass() == objectClass) {
+                return (SharedPropModel<T>) existing;
+            }
+            final SharedPropModel<T> interned = candidate != null ? candidate : new SharedPropModel<T>(type, target,
+                    expression);
+            final WeakReference<SharedPropModel<?>> replacement = new WeakReference<SharedPropModel<?>>(interned);
+            if (reference == null ? byPath.putIfAbsent(expression, replacement) == null : byPath.replace(expression,
+                    reference, replacement)) {
+                return interned;
+            }
+            // another thread got there first, use its model
+        }
+    }
+
     private static class TypeAwarePropModel<T> extends PropertyModel<T> {
         private final Class<T> type;
 
         private TypeAwarePropModel(final Class<T> type, final Object target, final String expression) {
             super(target, expression);
-            this.type = (Class<T>) unproxy(type)[0];
+            this.type = unproxiedType(type);
         }
 
         @Override
@@ -258,6 +854,37 @@ public final class SafeModel {
         }
     }
 
+    /**
+     * A property model over a {@link SharedRoot}, shared between sessions. It is read-only and never detaches its root,
+     * since other sessions use it at the same time.
+     */
+    private static final class SharedPropModel<T> extends TypeAwarePropModel<T> {
+        private SharedPropModel(final Class<T> type, final Object target, final String expression) {
+            super(type, target, expression);
+        }
+
+        @Override
+        public void setObject(final T object) {
+            throw new UnsupportedOperationException("models built from a SharedRoot are shared between sessions "
+                    + "and cannot be changed, build a model from a non-shared root instead");
+        }
+
+        @Override
+        public void setChainedModel(final IModel<?> model) {
+            throw new UnsupportedOperationException("models built from a SharedRoot are shared between sessions "
+                    + "and cannot be changed");
+        }
+
+        @Override
+        public void detach() {
+            // the root is application-scoped
+        }
+
+        private Object readResolve() {
+            return intern(getObjectClass(), getTarget(), getPropertyExpression(), this);
+        }
+    }
+
     private static void clear() {
         serviceArguments.remove();
         root.remove();
@@ -266,6 +893,7 @@ public final class SafeModel {
         currentType.remove();
         serviceMethod.remove();
         mode.remove();
+        callSiteRecording.remove();
     }
 
     /**
@@ -283,7 +911,7 @@ public final class SafeModel {
         root.set(target);
         currentTarget.set(target);
         mode.set(Mode.PROPERTY);
-        return (U) imposterise(target.getClass(), PropertyFinderImpl.INSTANCE, PropertyFinder.class);
+        return (U) startPropertyRecording(target.getClass());
     }
 
     /**
@@ -314,18 +942,199 @@ public final class SafeModel {
                 classToImposterize = reflectModelObjectType(target);
             }
         }
-        return imposterise(classToImposterize, PropertyFinderImpl.INSTANCE, PropertyFinder.class);
+        return startPropertyRecording(classToImposterize);
     }
 
     public static <U> U imposterise(final Class<U> classToImposterize, Invokable handler, Class<?> handlerInterface) {
         final Class<?>[] classOrInterfaces = unproxy(classToImposterize);
         if (classOrInterfaces.length == 1) {
-            return (U) ClassImposteriser.INSTANCE.imposterise(handler, classOrInterfaces[0], handlerInterface);
+            return (U) imposteriseClass(handler, classOrInterfaces[0], handlerInterface);
         } else {
-            return (U) ClassImposteriser.INSTANCE.imposterise(handler, handlerInterface, classOrInterfaces);
+            return (U) imposteriseClass(handler, handlerInterface, classOrInterfaces);
         }
     }
 
+    private static final String PREBUILT_PROXY_MARKER = "$$SafeModelProxy$$";
+
+    /**
+     * Where {@link ProxyGenerator} lists the proxy classes it generated, one class name per line.
+     */
+    static final String PREBUILT_PROXY_INDEX = "META-INF/safemodel/proxies";
+
+    private static volatile Set<String> prebuiltProxyNames;
+    private static final ConcurrentMap<String, Class<?>> prebuiltProxyClasses = new ConcurrentHashMap<String, Class<?>>();
+    private static volatile boolean requirePrebuiltProxies = false;
+    private static final Objenesis objenesis = new ObjenesisStd();
+
+    /**
+     * Make proxy creation fail instead of generating a proxy class at runtime when no class pre-built by
+     * {@link ProxyGenerator} is available. Useful in tests to check that the build generates all proxies needed.
+     * Proxies of <code>Object</code>, for example for service methods declared to return it, are never pre-built and
+     * still generated at runtime. Private classes and package-private JDK classes such as the one returned by
+     * <code>Collections.unmodifiableList()</code> can't be proxied, SafeModel falls back to their public supertype.
+     * 
+     * @param required
+     *            whether pre-built proxy classes are required
+     */
+    public static void setRequirePrebuiltProxies(final boolean required) {
+        requirePrebuiltProxies = required;
+    }
+
+    /**
+     * Creates proxies like jMock's {@link ClassImposteriser}, but uses a class pre-built by {@link ProxyGenerator} if
+     * there is one, so no bytecode needs to be generated at runtime.
+     */
+    private static <T> T imposteriseClass(final Invokable handler, final Class<T> mockedType,
+            final Class<?>... ancillaryTypes) {
+        final String name = prebuiltProxyName(mockedType, ancillaryTypes);
+        final Class<?> prebuilt = name != null ? prebuiltProxyClass(name, mockedType) : null;
+        if (prebuilt != null) {
+            final Factory proxy = (Factory) objenesis.newInstance(prebuilt);
+            proxy.setCallbacks(new Callback[] { new InvocationHandler() {
+                public Object invoke(final Object receiver, final Method method, final Object[] args) throws Throwable {
+                    return handler.invoke(new Invocation(receiver, method, args));
+                }
+            }, NoOp.INSTANCE });
+            return mockedType.cast(proxy);
+        }
+        if (requirePrebuiltProxies && name != null) {
+            throw new IllegalStateException("no pre-built proxy class " + name + " - "
+                    + missingProxyAdvice(mockedType, ancillaryTypes));
+        }
+        return ClassImposteriser.INSTANCE.imposterise(handler, mockedType, ancillaryTypes);
+    }
+
+    private static String missingProxyAdvice(final Class<?> mockedType, final Class<?>[] ancillaryTypes) {
+        if (ServiceFinder.class.equals(mockedType)) {
+            final StringBuilder interfaces = new StringBuilder();
+            for (final Class<?> type : ancillaryTypes) {
+                interfaces.append(interfaces.length() > 0 ? "," : "").append(type.getName());
+            }
+            return "the service is a JDK proxy, pass service:" + interfaces + " to ProxyGenerator";
+        } else if (Arrays.asList(ancillaryTypes).contains(ServiceFinder.class)) {
+            return "pass service:" + mockedType.getName() + " to ProxyGenerator";
+        } else {
+            return mockedType.getName()
+                    + " is only known at runtime, pass the class or service that returns it to ProxyGenerator";
+        }
+    }
+
+    private static Class<?> prebuiltProxyClass(final String name, final Class<?> mockedType) {
+        final Set<String> names = getPrebuiltProxyNames();
+        if (!names.contains(name)) {
+            return null;
+        }
+        Class<?> proxyClass = prebuiltProxyClasses.get(name);
+        if (proxyClass == null) {
+            final ClassLoader loader = mockedType.getClassLoader() != null ? mockedType.getClassLoader()
+                    : SafeModel.class.getClassLoader();
+            try {
+                proxyClass = Class.forName(name, true, loader);
+            } catch (final ClassNotFoundException e) {
+                return null;
+            }
+            prebuiltProxyClasses.put(name, proxyClass);
+        }
+        return proxyClass;
+    }
+
+    /**
+     * The name of the proxy class {@link ProxyGenerator} generates for the given types. The proxy lives in the mocked
+     * type's package and is loaded by the mocked type's class loader, so it can extend package-private classes.
+     * Package-private JDK classes are the exception, they can't be proxied at all and callers fall back to a public
+     * supertype. The order of the ancillary types doesn't matter, so the interfaces of a JDK proxy can be listed in any
+     * order.
+     * 
+     * @return the class name, or null if no proxy can be pre-built for these types. Proxies for these are always
+     *         generated at runtime, even if pre-built proxies are required.
+     */
+    static String prebuiltProxyName(final Class<?> mockedType, final Class<?>[] ancillaryTypes) {
+        if (Object.class.equals(mockedType)) {
+            // jMock works around a cglib bug for these, leave them to jMock
+            return null;
+        }
+        final int modifiers = mockedType.getModifiers();
+        final String base = mockedType.getName();
+        if (Modifier.isPrivate(modifiers) || (!Modifier.isPublic(modifiers) && base.startsWith("java"))) {
+            // can't be subclassed by a proxy, not even at runtime. Callers fall back to a public supertype, so
+            // these must not fail when pre-built proxies are required
+            return null;
+        }
+        final List<String> names = new ArrayList<String>();
+        for (final Class<?> type : ancillaryTypes) {
+            names.add(type.getName());
+        }
+        Collections.sort(names);
+        final StringBuilder interfaces = new StringBuilder();
+        for (final String name : names) {
+            interfaces.append(name).append(',');
+        }
+        // classes in java.* packages can't be defined by application class loaders
+        return (base.startsWith("java") ? "$" : "") + base + PREBUILT_PROXY_MARKER
+                + Integer.toHexString(interfaces.toString().hashCode());
+    }
+
+    private static Set<String> getPrebuiltProxyNames() {
+        if (prebuiltProxyNames == null) {
+            synchronized (SafeModel.class) {
+                if (prebuiltProxyNames == null) {
+                    final Set<String> names = new HashSet<String>();
+                    try {
+                        final Enumeration<URL> indexes = SafeModel.class.getClassLoader().getResources(
+                                PREBUILT_PROXY_INDEX);
+                        while (indexes.hasMoreElements()) {
+                            readPrebuiltProxyIndex(indexes.nextElement(), names);
+                        }
+                    } catch (final IOException e) {
+                        throw new RuntimeException("could not read pre-built proxy index", e);
+                    }
+                    prebuiltProxyNames = names;
+                }
+            }
+        }
+        return prebuiltProxyNames;
+    }
+
+    private static void readPrebuiltProxyIndex(final URL index, final Set<String> names) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(index.openStream(), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() > 0) {
+                    names.add(line.trim());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Make the proxy classes listed in the given loader's index known, for example because they were just generated
+     * into a directory that is not on the classpath. Undo with {@link #resetPrebuiltProxies()}.
+     */
+    static synchronized void registerPrebuiltProxies(final ClassLoader loader) throws IOException,
+            ClassNotFoundException {
+        final Set<String> names = new HashSet<String>();
+        final Enumeration<URL> indexes = loader.getResources(PREBUILT_PROXY_INDEX);
+        while (indexes.hasMoreElements()) {
+            readPrebuiltProxyIndex(indexes.nextElement(), names);
+        }
+        for (final String name : names) {
+            prebuiltProxyClasses.put(name, Class.forName(name, false, loader));
+        }
+        names.addAll(getPrebuiltProxyNames());
+        prebuiltProxyNames = names;
+    }
+
+    /**
+     * Forget registered proxy classes and read the index on the classpath again when proxies are next needed.
+     */
+    static synchronized void resetPrebuiltProxies() {
+        prebuiltProxyNames = null;
+        prebuiltProxyClasses.clear();
+    }
+
     @SuppressWarnings("unchecked")
     private static <U> Class<U> reflectModelObjectType(final IModel<U> target) throws Error {
         final U targetObject = target.getObject();
@@ -363,6 +1172,22 @@ public final class SafeModel {
         return (U) imposterise(target.getClass(), ServiceFinderImpl.INSTANCE, ServiceFinder.class);
     }
 
+    /**
+     * Start recording a page method for {@link #dataProvider(Iterable)}. Unlike {@link #fromService(Object)}, the
+     * recorded method is not called, its declared return type is enough.
+     * 
+     * @param target
+     *            the service
+     * @return a proxy recording the page method
+     */
+    @SuppressWarnings("unchecked")
+    public static <U> U pagedFromService(final U target) {
+        clear();
+        root.set(target);
+        mode.set(Mode.PAGE);
+        return (U) imposterise(target.getClass(), ServiceFinderImpl.INSTANCE, ServiceFinder.class);
+    }
+
     public static interface ServiceFinder {
         // marker
     }
@@ -385,19 +1210,36 @@ public final class SafeModel {
             serviceMethod.set(method);
             final Object[] args = invocation.getParametersAsArray();
             serviceArguments.set(args);
+            final Class<?> declaredType = method.getReturnType();
+            if (declaredType.isPrimitive()) {
+                // only the type matters for recording, so don't call the service (think of COUNT queries)
+                return zeroValues.get(declaredType);
+            }
+            if (mode.get() == Mode.PAGE) {
+                // a page method is only recorded to be called later, with the real offset and limit
+                if (Modifier.isFinal(declaredType.getModifiers())) {
+                    return null;
+                }
+                return imposteriseClass(BLOCKER, declaredType);
+            }
             final Object rootObject = root.get();
             final Object callResult = rootObject != null ? method.invoke(rootObject, args) : null;
-            final Class<?> returnType = callResult != null ? callResult.getClass() : method.getReturnType();
-            if (returnType.isPrimitive()) {
-                return callResult;
-            }
+            final Class<?> returnType = callResult != null ? callResult.getClass() : declaredType;
             if (Modifier.isFinal(returnType.getModifiers())) {
                 return callResult;
             } else if (Object.class.equals(returnType)) {
-                return ClassImposteriser.INSTANCE.imposterise(BLOCKER, Object.class);
+                return imposteriseClass(BLOCKER, Object.class);
             } else {
                 try {
-                    return ClassImposteriser.INSTANCE.imposterise(BLOCKER, returnType);
+                    return imposteriseClass(BLOCKER, returnType);
+                } catch (IllegalArgumentException e) {
+                    // private JDK classes such as iterators, sublists or Collections.emptyList() can't be
+                    // subclassed, but the declared type is good enough for recording
+                    if (returnType.equals(declaredType)) {
+                        throw e;
+                    }
+                    return Object.class.equals(declaredType) ? imposteriseClass(BLOCKER, Object.class)
+                            : imposteriseClass(BLOCKER, declaredType);
                 } catch (ClassCastException e) {
                     // some classloading problem in an appserver... maybe we can get by with just a null:
                     return null;
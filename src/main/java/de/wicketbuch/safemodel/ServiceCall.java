@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2011 Carl-Eric Menzel <cmenzel@wicketbuch.de>
+ * and possibly other SafeModel contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wicketbuch.safemodel;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * A service method call recorded by {@link SafeModel#fromService(Object)}. Keeps the method by name so it can be
+ * serialized along with the model using it.
+ */
+final class ServiceCall implements Serializable {
+    private final Object target;
+    private final Class<?> declaringClass;
+    final String methodName;
+    final Class<?>[] parameterTypes;
+    final Object[] arguments;
+    private transient Method method;
+
+    ServiceCall(final Object target, final Method method, final Object[] arguments) {
+        this.target = target;
+        this.declaringClass = method.getDeclaringClass();
+        this.methodName = method.getName();
+        this.parameterTypes = method.getParameterTypes();
+        this.arguments = arguments;
+        this.method = method;
+    }
+
+    Method getMethod() {
+        if (method == null) {
+            try {
+                method = declaringClass.getDeclaredMethod(methodName, parameterTypes);
+            } catch (final NoSuchMethodException e) {
+                throw new IllegalStateException("recorded service method has disappeared", e);
+            }
+        }
+        return method;
+    }
+
+    Object invoke() {
+        return invoke(arguments);
+    }
+
+    Object invoke(final Object[] args) {
+        try {
+            return getMethod().invoke(target, args);
+        } catch (final InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new RuntimeException(e.getCause());
+            }
+        } catch (final IllegalArgumentException e) {
+            throw e;
+        } catch (final IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2011 Carl-Eric Menzel <cmenzel@wicketbuch.de>
+ * and possibly other SafeModel contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wicketbuch.safemodel;
+
+import org.apache.wicket.markup.repeater.data.IDataProvider;
+import org.apache.wicket.model.IModel;
+
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * An {@link IDataProvider} calling a recorded page method for each page that is displayed. The row count is loaded
+ * at most once per request. Each row is wrapped in a {@link RowModel} that reloads it by its id.
+ */
+public final class ServiceDataProvider<T> implements IDataProvider<T> {
+    private final ServiceCall pageCall;
+    private final ServiceCall countCall;
+    private final RowLoader<T> rowLoader;
+    private transient Integer size;
+
+    ServiceDataProvider(final ServiceCall pageCall, final ServiceCall countCall,
+            final RowLoader<T> rowLoader) {
+        this.pageCall = pageCall;
+        this.countCall = countCall;
+        this.rowLoader = rowLoader;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Iterator<? extends T> iterator(final int first, final int count) {
+        final Object[] arguments = pageCall.arguments.clone();
+        final Class<?>[] types = pageCall.parameterTypes;
+        arguments[arguments.length - 2] = toIndex(types[types.length - 2], first);
+        arguments[arguments.length - 1] = toIndex(types[types.length - 1], count);
+        final Object page = pageCall.invoke(arguments);
+        if (page == null) {
+            return Collections.<T> emptyList().iterator();
+        } else if (page instanceof Iterator) {
+            return (Iterator<T>) page;
+        } else {
+            return ((Iterable<T>) page).iterator();
+        }
+    }
+
+    private static Object toIndex(final Class<?> type, final int value) {
+        if (long.class.equals(type) || Long.class.equals(type)) {
+            return Long.valueOf(value);
+        } else {
+            return Integer.valueOf(value);
+        }
+    }
+
+    public int size() {
+        if (size == null) {
+            final Number count = (Number) countCall.invoke();
+            size = count != null ? (int) Math.min(count.longValue(), Integer.MAX_VALUE) : 0;
+        }
+        return size;
+    }
+
+    public IModel<T> model(final T object) {
+        return new RowModel<T>(rowLoader, object);
+    }
+
+    public void detach() {
+        size = null;
+    }
+}
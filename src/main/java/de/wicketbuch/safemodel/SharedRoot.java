@@ -0,0 +1,30 @@
+/**
+ * Copyright (C) 2011 Carl-Eric Menzel <cmenzel@wicketbuch.de>
+ * and possibly other SafeModel contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wicketbuch.safemodel;
+
+/**
+ * Marker for application-scoped roots such as singletons or reference data holders. All property models built
+ * with {@link SafeModel#from(Object)} on the same shared root and the same property path are the same instance, so
+ * sessions holding such models do not each keep their own copy. Shared roots are looked up by
+ * <code>equals()</code> and kept for the lifetime of the application. Deserialized models are interned again;
+ * implement <code>readResolve()</code> on the root if deserialized copies should collapse back to the application's
+ * instance. Serialized pages still contain the root.
+ */
+public interface SharedRoot {
+    // marker
+}
@@ -17,9 +17,18 @@
 
 package de.wicketbuch.safemodel;
 
+import org.apache.wicket.MarkupContainer;
+import org.apache.wicket.ajax.AjaxRequestTarget;
+import org.apache.wicket.ajax.markup.html.AjaxLink;
+import org.apache.wicket.markup.IMarkupResourceStreamProvider;
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.model.AbstractReadOnlyModel;
 import org.apache.wicket.model.IModel;
+import org.apache.wicket.model.IObjectClassAwareModel;
 import org.apache.wicket.model.Model;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.StringResourceStream;
 import org.apache.wicket.util.tester.WicketTester;
 import org.jmock.api.Invocation;
 import org.jmock.api.Invokable;
@@ -28,14 +37,27 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static de.wicketbuch.safemodel.SafeModel.*;
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 public class SafeModelTest {
 
@@ -397,4 +419,528 @@ public class SafeModelTest {
         model.setObject(true);
         assertTrue(top.isBoolProp());
     }
+
+    public static class ChangeTrackingPage extends WebPage implements IMarkupResourceStreamProvider {
+        public ChangeTrackingPage(final Middle changing, final Middle fixed) {
+            final Label changed = new Label("changed", model(from(changing).getString()));
+            changed.setOutputMarkupId(true).setMarkupId("changed").add(
+                    new ChangeTrackingBehavior(ChangeTrackingBehavior.VALUE));
+            final Label unchanged = new Label("unchanged", model(from(fixed).getString()));
+            unchanged.setOutputMarkupId(true).setMarkupId("unchanged").add(
+                    new ChangeTrackingBehavior(ChangeTrackingBehavior.VALUE));
+            add(changed, unchanged);
+            add(new AjaxLink<Void>("link") {
+                @Override
+                public void onClick(final AjaxRequestTarget target) {
+                    addChanged(target, changed, unchanged);
+                }
+            });
+        }
+
+        public IResourceStream getMarkupResourceStream(final MarkupContainer container, final Class<?> containerClass) {
+            return new StringResourceStream("<html><body><span wicket:id=\"changed\"></span>"
+                    + "<span wicket:id=\"unchanged\"></span><a wicket:id=\"link\">link</a></body></html>");
+        }
+    }
+
+    @Test
+    public void addChangedSkipsUnchangedComponents() throws Exception {
+        final Middle changing = new Middle();
+        changing.setString("before");
+        final Middle fixed = new Middle();
+        fixed.setString("fixed");
+        tester.startPage(new ChangeTrackingPage(changing, fixed));
+        changing.setString("after");
+        tester.executeAjaxEvent("link", "onclick");
+        final String response = tester.getLastResponseAsString();
+        assertTrue(response.contains("<component id=\"changed\""));
+        assertFalse(response.contains("unchanged"));
+        tester.executeAjaxEvent("link", "onclick");
+        assertFalse(tester.getLastResponseAsString().contains("<component id=\"changed\""));
+    }
+
+    public static class VersionedMid extends Middle {
+        private final int id;
+        private final int version;
+
+        public VersionedMid(final int id, final int version) {
+            this.id = id;
+            this.version = version;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof VersionedMid && ((VersionedMid) other).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+    }
+
+    public static class VersionedMidService {
+        private int version = 1;
+        private boolean deleted = false;
+
+        public VersionedMid loadMid() {
+            // a fresh copy for every load, like an entity manager would return
+            return deleted ? null : new VersionedMid(42, version);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    @Test
+    public void changeTrackingUsesSuppliedFingerprint() throws Exception {
+        final VersionedMidService service = new VersionedMidService();
+        final IModel<VersionedMid> model = model(fromService(service).loadMid());
+        final Label label = new Label("mid", model);
+        final ChangeTrackingBehavior tracker = new ChangeTrackingBehavior(new Fingerprint<VersionedMid>() {
+            public Object of(final VersionedMid value) {
+                return value.getVersion();
+            }
+        });
+        label.add(tracker);
+        assertTrue(tracker.isChangedSinceRender(label));
+        tracker.afterRender(label);
+        model.detach();
+        assertFalse(tracker.isChangedSinceRender(label));
+        service.version = 2;
+        model.detach();
+        assertTrue(tracker.isChangedSinceRender(label));
+        service.deleted = true;
+        model.detach();
+        assertTrue(tracker.isChangedSinceRender(label));
+        tracker.afterRender(label);
+        model.detach();
+        assertFalse(tracker.isChangedSinceRender(label));
+    }
+
+    public static class PagedMidService {
+        private final List<Middle> mids = new ArrayList<Middle>();
+        private final List<Integer> requestedLimits = new ArrayList<Integer>();
+        private int countCalls = 0;
+
+        public PagedMidService() {
+            for (int i = 0; i < 10; i++) {
+                final Middle middle = new Middle();
+                middle.setString("mid" + i);
+                mids.add(middle);
+            }
+        }
+
+        public List<Middle> findMids(final int offset, final int limit) {
+            requestedLimits.add(limit);
+            return mids.subList(Math.min(offset, mids.size()), Math.min(offset + limit, mids.size()));
+        }
+
+        public Iterator<Middle> streamMids(final long offset, final long limit) {
+            return findMids((int) offset, (int) limit).iterator();
+        }
+
+        public Middle findMid(final String name) {
+            for (final Middle middle : mids) {
+                if (middle.getString().equals(name)) {
+                    return middle;
+                }
+            }
+            return null;
+        }
+
+        public List<Middle> findAllMids() {
+            return mids;
+        }
+
+        public long countMids() {
+            countCalls++;
+            return mids.size();
+        }
+    }
+
+    public static class MidLoader implements RowLoader<Middle> {
+        private final PagedMidService service;
+
+        public MidLoader(final PagedMidService service) {
+            this.service = service;
+        }
+
+        public Serializable idOf(final Middle row) {
+            return row.getString();
+        }
+
+        public Middle load(final Serializable id) {
+            return service.findMid((String) id);
+        }
+    }
+
+    @Test
+    public void pagedServiceDataProvider() throws Exception {
+        final PagedMidService service = new PagedMidService();
+        final ServiceDataProvider<Middle> provider = dataProvider(pagedFromService(service).findMids(0, 0))
+                .countedBy(fromService(service).countMids()).rowsLoadedBy(new MidLoader(service));
+        assertEquals(0, service.countCalls);
+        assertTrue(service.requestedLimits.isEmpty());
+        assertEquals(10, provider.size());
+        assertEquals(10, provider.size());
+        assertEquals(1, service.countCalls);
+        final Iterator<? extends Middle> page = provider.iterator(4, 3);
+        final Middle first = page.next();
+        assertEquals("mid4", first.getString());
+        assertEquals(Arrays.asList(3), service.requestedLimits);
+        final IModel<Middle> rowModel = provider.model(first);
+        provider.detach();
+        rowModel.detach();
+        assertEquals("mid4", rowModel.getObject().getString());
+        assertEquals(10, provider.size());
+        assertEquals(2, service.countCalls);
+    }
+
+    @Test
+    public void pagedServiceDataProviderRowsAreReloadedById() throws Exception {
+        final PagedMidService service = new PagedMidService();
+        final ServiceDataProvider<Middle> provider = dataProvider(pagedFromService(service).findMids(0, 0))
+                .countedBy(fromService(service).countMids()).rowsLoadedBy(new MidLoader(service));
+        final IModel<Middle> rowModel = provider.model(provider.iterator(4, 1).next());
+        rowModel.detach();
+        service.mids.remove(0);
+        assertEquals("mid4", rowModel.getObject().getString());
+    }
+
+    @Test
+    public void pagedServiceDataProviderWithIterator() throws Exception {
+        final PagedMidService service = new PagedMidService();
+        final ServiceDataProvider<Middle> provider = dataProvider(pagedFromService(service).streamMids(0, 0))
+                .countedBy(fromService(service).countMids()).rowsLoadedBy(new MidLoader(service));
+        final Iterator<? extends Middle> page = provider.iterator(8, 5);
+        assertEquals("mid8", page.next().getString());
+        assertEquals("mid9", page.next().getString());
+        assertFalse(page.hasNext());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void pagedServiceDataProviderNeedsPagedRecording() throws Exception {
+        final PagedMidService service = new PagedMidService();
+        dataProvider(fromService(service).findMids(0, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pagedServiceDataProviderNeedsOffsetAndLimit() throws Exception {
+        final PagedMidService service = new PagedMidService();
+        dataProvider(pagedFromService(service).findAllMids());
+    }
+
+    public static class ReferenceData implements SharedRoot, Serializable {
+        private static final ReferenceData INSTANCE = new ReferenceData();
+        private String currency = "EUR";
+
+        public String getCurrency() {
+            return currency;
+        }
+
+        public void setCurrency(String currency) {
+            this.currency = currency;
+        }
+
+        private Object readResolve() {
+            return INSTANCE;
+        }
+    }
+
+    @Test
+    public void sharedRootModelsAreInterned() throws Exception {
+        final IModel<String> model = model(from(ReferenceData.INSTANCE).getCurrency());
+        assertSame(model, model(from(ReferenceData.INSTANCE).getCurrency()));
+        assertEquals("EUR", model.getObject());
+        assertSame(model, deserialize(serialize(model)));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void sharedRootModelsAreReadOnly() throws Exception {
+        model(from(ReferenceData.INSTANCE).getCurrency()).setObject("USD");
+    }
+
+    @Test
+    public void sharedRootModelsAreInternedAcrossThreads() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<IModel<String>>> models = new ArrayList<Future<IModel<String>>>();
+            for (int i = 0; i < 64; i++) {
+                models.add(executor.submit(new Callable<IModel<String>>() {
+                    public IModel<String> call() {
+                        return model(from(ReferenceData.INSTANCE).getCurrency());
+                    }
+                }));
+            }
+            final IModel<String> first = models.get(0).get();
+            for (final Future<IModel<String>> model : models) {
+                assertSame(first, model.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void unsharedRootModelsAreNotInterned() throws Exception {
+        final Middle mid = new Middle();
+        assertNotSame(model(from(mid).getString()), model(from(mid).getString()));
+    }
+
+    public static class SlowMidService {
+        private long delayMillis = 0;
+
+        public Middle loadMid() throws InterruptedException {
+            Thread.sleep(delayMillis);
+            final Middle middle = new Middle();
+            middle.setString("loaded");
+            return middle;
+        }
+
+        @LoadTimeout(value = 50, fallback = LoadFallback.DEFAULT)
+        public Middle loadMidWithTimeout() throws InterruptedException {
+            return loadMid();
+        }
+    }
+
+    @Test
+    public void annotatedLoadTimeoutFallsBackToDefault() throws Exception {
+        final SlowMidService service = new SlowMidService();
+        final IModel<Middle> model = model(fromService(service).loadMidWithTimeout());
+        service.delayMillis = 5000;
+        LoadTimeoutMetrics.reset();
+        assertNull(model.getObject());
+        assertEquals(1, LoadTimeoutMetrics.getTimeouts());
+        assertEquals(1, LoadTimeoutMetrics.getDefaultFallbacks());
+    }
+
+    @Test
+    public void rejectedLoadFallsBackLikeATimeout() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        setLoadExecutor(executor);
+        try {
+            final SlowMidService service = new SlowMidService();
+            final IModel<Middle> model = model(fromService(service).loadMidWithTimeout());
+            LoadTimeoutMetrics.reset();
+            assertNull(model.getObject());
+            assertEquals(1, LoadTimeoutMetrics.getTimeouts());
+            assertEquals(1, LoadTimeoutMetrics.getDefaultFallbacks());
+        } finally {
+            setLoadExecutor(null);
+        }
+    }
+
+    @Test
+    public void loadTimeoutFallsBackToLastValue() throws Exception {
+        final SlowMidService service = new SlowMidService();
+        final IModel<Middle> model = withLoadTimeout(model(fromService(service).loadMid()), 50,
+                LoadFallback.LAST_VALUE);
+        final Middle loaded = model.getObject();
+        assertEquals("loaded", loaded.getString());
+        model.detach();
+        service.delayMillis = 5000;
+        assertSame(loaded, model.getObject());
+    }
+
+    @Test(expected = LoadTimeoutException.class)
+    public void loadTimeoutFails() throws Exception {
+        final SlowMidService service = new SlowMidService();
+        final IModel<Middle> model = withLoadTimeout(model(fromService(service).loadMid()), 50, LoadFallback.FAIL);
+        service.delayMillis = 5000;
+        model.getObject();
+    }
+
+    public static class CountingTop extends Top {
+        private int midCalls = 0;
+
+        @Override
+        public Middle getMid() {
+            midCalls++;
+            return super.getMid();
+        }
+    }
+
+    public static class OtherTop extends Top {
+    }
+
+    private IModel<String> midStringModel(final Top top) {
+        return model(from(top).getMid().getString());
+    }
+
+    private IModel<?> midOrMidStringModel(final Top top, final boolean mid) {
+        return mid ? model(from(top).getMid()) : model(from(top).getMid().getString());
+    }
+
+    @Test
+    public void callSiteCachingSkipsRecording() throws Exception {
+        assumeTrue(setCallSiteCaching(true));
+        try {
+            final CountingTop first = new CountingTop();
+            first.setMid(new Middle());
+            first.getMid().setString("first");
+            assertEquals("first", midStringModel(first).getObject());
+            final CountingTop second = new CountingTop();
+            second.setMid(new Middle());
+            second.getMid().setString("second");
+            second.midCalls = 0;
+            final IModel<String> secondModel = midStringModel(second);
+            assertEquals(0, second.midCalls);
+            assertEquals("second", secondModel.getObject());
+            assertEquals(String.class, ((IObjectClassAwareModel<String>) secondModel).getObjectClass());
+            final OtherTop other = new OtherTop();
+            other.setMid(new Middle());
+            other.getMid().setString("other");
+            assertEquals("other", midStringModel(other).getObject());
+        } finally {
+            setCallSiteCaching(false);
+        }
+    }
+
+    @Test
+    public void callSiteCachingFallsBackForDifferentChains() throws Exception {
+        assumeTrue(setCallSiteCaching(true));
+        try {
+            final Top top = new Top();
+            top.setMid(new Middle());
+            top.getMid().setString("string");
+            assertEquals("string", midOrMidStringModel(top, false).getObject());
+            assertSame(top.getMid(), midOrMidStringModel(top, true).getObject());
+            assertEquals("string", midOrMidStringModel(top, false).getObject());
+            assertSame(top.getMid(), midOrMidStringModel(top, true).getObject());
+        } finally {
+            setCallSiteCaching(false);
+        }
+    }
+
+    public static class NullService {
+        public String loadNothing() {
+            return null;
+        }
+    }
+
+    @Test
+    public void serviceModelWithNullResult() throws Exception {
+        final IModel<String> model = model(fromService(new NullService()).loadNothing());
+        assertNull(model.getObject());
+        assertNull(((IObjectClassAwareModel<String>) model).getObjectClass());
+    }
+
+    public static class SerializableMidService implements Serializable {
+        public Middle loadMid() {
+            return new Middle();
+        }
+    }
+
+    @Test
+    public void unrenderedServiceModelSerializesWithoutProxyClass() throws Exception {
+        final IModel<Middle> model = model(fromService(new SerializableMidService()).loadMid());
+        final byte[] bytes = serialize(model);
+        assertFalse(new String(bytes, "ISO-8859-1").contains("$$"));
+        final IObjectClassAwareModel<Middle> deserialized = (IObjectClassAwareModel<Middle>) deserialize(bytes);
+        assertEquals(Middle.class, deserialized.getObjectClass());
+    }
+
+    @Test
+    public void prebuiltProxiesArePreferred() throws Exception {
+        final File outputDirectory = newTempDirectory();
+        try {
+            final Set<String> generated = new ProxyGenerator(outputDirectory).addPropertyRoot(Top.class).writeIndex();
+            assertTrue(new File(outputDirectory, "META-INF/safemodel/proxies").isFile());
+            final String middleProxy = prebuiltProxyName(Middle.class, new Class<?>[] { PropertyFinder.class });
+            assertTrue(generated.contains(middleProxy));
+            assertTrue(new File(outputDirectory, middleProxy.replace('.', File.separatorChar) + ".class").isFile());
+            final ClassLoader proxyLoader = new URLClassLoader(new URL[] { outputDirectory.toURI().toURL() },
+                    getClass().getClassLoader());
+            registerPrebuiltProxies(proxyLoader);
+            setRequirePrebuiltProxies(true);
+            final Top top = new Top();
+            top.setMid(mid);
+            final Object midProxy = from(top).getMid();
+            assertSame(proxyLoader, midProxy.getClass().getClassLoader());
+            final IModel<Integer> model = model(from(top).getMid().getBot().getValue());
+            assertEquals(Integer.valueOf(42), model.getObject());
+        } finally {
+            setRequirePrebuiltProxies(false);
+            resetPrebuiltProxies();
+            delete(outputDirectory);
+        }
+    }
+
+    public static interface MidLookup {
+        Middle lookupMid();
+
+        Object lookupAnything();
+
+        List<String> lookupNames();
+    }
+
+    @Test
+    public void prebuiltProxiesForJdkProxyServices() throws Exception {
+        final File outputDirectory = newTempDirectory();
+        try {
+            new ProxyGenerator(outputDirectory).addServiceRoot(MidLookup.class, Serializable.class)
+                    .addServiceRoot(MidLookup.class).writeIndex();
+            registerPrebuiltProxies(new URLClassLoader(new URL[] { outputDirectory.toURI().toURL() }, getClass()
+                    .getClassLoader()));
+            setRequirePrebuiltProxies(true);
+            final InvocationHandler handler = new InvocationHandler() {
+                public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                    if ("lookupNames".equals(method.getName())) {
+                        return Collections.unmodifiableList(Arrays.asList("a", "b"));
+                    }
+                    return "lookupMid".equals(method.getName()) ? mid : "anything";
+                }
+            };
+            final MidLookup service = (MidLookup) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { Serializable.class, MidLookup.class }, handler);
+            assertSame(mid, model(fromService(service).lookupMid()).getObject());
+            assertEquals("anything", model(fromService(service).lookupAnything()).getObject());
+
+            final MidLookup singleInterfaceService = (MidLookup) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { MidLookup.class }, handler);
+            assertSame(mid, model(fromService(singleInterfaceService).lookupMid()).getObject());
+            // the runtime type is a package-private JDK class, the pre-built List proxy is used instead
+            assertEquals(Arrays.asList("a", "b"), model(fromService(singleInterfaceService).lookupNames())
+                    .getObject());
+        } finally {
+            setRequirePrebuiltProxies(false);
+            resetPrebuiltProxies();
+            delete(outputDirectory);
+        }
+    }
+
+    private static byte[] serialize(final Object object) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(final byte[] bytes) throws IOException, ClassNotFoundException {
+        return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+    }
+
+    /**
+     * @return a path for a directory that doesn't exist yet, remove it with {@link #delete(File)}
+     */
+    private static File newTempDirectory() throws IOException {
+        final File directory = File.createTempFile("safemodel", "proxies");
+        directory.delete();
+        return directory;
+    }
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
 }